@@ -0,0 +1,292 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright IBM Corp. 2024, 2025
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.corestorage.heap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
+
+/**
+ * Asynchronous view of a {@link HeapKeyValueStorage}.
+ * <p>
+ * Operations are queued per top-level lock stripe and drained in batches: every operation that piled up on a stripe
+ * while it was busy is applied in submission order, under a single acquisition of that stripe's lock unless the stripe
+ * got split. Futures are completed once the lock is released. Unless an executor is given, drains run on virtual
+ * threads when the runtime offers them (Java 21+) and on a dedicated pool of daemon threads otherwise, so that drains
+ * blocking on a stripe lock never tie up the common fork-join pool. The stripe locks are not monitors, so a drain
+ * blocking on one parks its virtual thread without pinning the carrier.
+ */
+public class HeapAsyncKeyValueStorage<K, V> {
+
+  private static final Executor DEFAULT_EXECUTOR = defaultExecutor();
+
+  private final HeapKeyValueStorage<K, V> storage;
+  private final Executor executor;
+  private final List<Batch> batches;
+
+  public HeapAsyncKeyValueStorage(final HeapKeyValueStorage<K, V> storage) {
+    this(storage, DEFAULT_EXECUTOR);
+  }
+
+  public HeapAsyncKeyValueStorage(final HeapKeyValueStorage<K, V> storage, final Executor executor) {
+    this.storage = storage;
+    this.executor = executor;
+    final int stripes = storage.stripeCount();
+    this.batches = new ArrayList<Batch>(stripes);
+    for (int i = 0; i < stripes; i++) {
+      batches.add(new Batch());
+    }
+  }
+
+  public CompletableFuture<V> get(final K key) {
+    return submit(new Operation<V>(key, false) {
+      @Override
+      V apply() {
+        return storage.doGet(key);
+      }
+    });
+  }
+
+  public CompletableFuture<Boolean> containsKey(final K key) {
+    return submit(new Operation<Boolean>(key, false) {
+      @Override
+      Boolean apply() {
+        return storage.doContainsKey(key);
+      }
+    });
+  }
+
+  public CompletableFuture<Void> put(final K key, final V value) {
+    return put(key, value, (byte) 0);
+  }
+
+  public CompletableFuture<Void> put(final K key, final V value, final byte metadata) {
+    return submit(new Operation<Void>(key, true) {
+      @Override
+      Void apply() {
+        storage.doPut(key, value, metadata);
+        return null;
+      }
+    });
+  }
+
+  public CompletableFuture<Boolean> remove(final K key) {
+    return submit(new Operation<Boolean>(key, true) {
+      @Override
+      Boolean apply() {
+        return storage.doRemove(key);
+      }
+    });
+  }
+
+  public CompletableFuture<Map<K, V>> getAll(final Collection<? extends K> keys) {
+    final Map<K, CompletableFuture<V>> futures = new HashMap<K, CompletableFuture<V>>();
+    for (K key : keys) {
+      futures.put(key, get(key));
+    }
+    return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()])).thenApply(new Function<Void, Map<K, V>>() {
+      @Override
+      public Map<K, V> apply(final Void ignored) {
+        final Map<K, V> values = new HashMap<K, V>();
+        for (Map.Entry<K, CompletableFuture<V>> entry : futures.entrySet()) {
+          final V value = entry.getValue().join();
+          if (value != null) {
+            values.put(entry.getKey(), value);
+          }
+        }
+        return values;
+      }
+    });
+  }
+
+  public CompletableFuture<Void> putAll(final Map<? extends K, ? extends V> entries) {
+    final List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>(entries.size());
+    for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+      futures.add(put(entry.getKey(), entry.getValue()));
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+  }
+
+  public CompletableFuture<Void> removeAll(final Collection<? extends K> keys) {
+    final List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>(keys.size());
+    for (K key : keys) {
+      futures.add(remove(key));
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+  }
+
+  private <T> CompletableFuture<T> submit(final Operation<T> operation) {
+    batches.get(storage.stripeIndex(operation.key)).add(operation);
+    return operation.future;
+  }
+
+  private static Executor defaultExecutor() {
+    try {
+      return (Executor)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      // no virtual threads before Java 21, at most one drain per stripe runs at any time
+      return Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+          final Thread thread = new Thread(r, "HeapAsyncKeyValueStorage drain");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+  }
+
+  private abstract class Operation<T> {
+
+    private final K key;
+    private final boolean write;
+    private final CompletableFuture<T> future = new CompletableFuture<T>();
+    private boolean ran;
+    private T result;
+    private Throwable failure;
+
+    Operation(final K key, final boolean write) {
+      this.key = key;
+      this.write = write;
+    }
+
+    abstract T apply();
+
+    void run() {
+      ran = true;
+      try {
+        result = apply();
+      } catch (Throwable t) {
+        failure = t;
+      }
+    }
+
+    void fail(final Throwable t) {
+      if (!ran) {
+        failure = t;
+      }
+    }
+
+    void complete() {
+      if (failure == null) {
+        future.complete(result);
+      } else {
+        future.completeExceptionally(failure);
+      }
+    }
+  }
+
+  private class Batch implements Runnable {
+
+    private final Queue<Operation<?>> pending = new ConcurrentLinkedQueue<Operation<?>>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    void add(final Operation<?> operation) {
+      pending.add(operation);
+      try {
+        schedule();
+      } catch (RuntimeException e) {
+        pending.remove(operation);
+        throw e;
+      }
+    }
+
+    private void schedule() {
+      if (scheduled.compareAndSet(false, true)) {
+        try {
+          executor.execute(this);
+        } catch (RuntimeException e) {
+          scheduled.set(false);
+          throw e;
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      final List<Operation<?>> operations = new ArrayList<Operation<?>>();
+      try {
+        drain(operations);
+      } catch (Throwable t) {
+        // fails whatever was taken off the queue but didn't get to run
+        for (Operation<?> operation : operations) {
+          operation.fail(t);
+        }
+        throw t;
+      } finally {
+        // release the stripe before completing: dependent stages run here and may wait on the same stripe
+        scheduled.set(false);
+        if (!pending.isEmpty()) {
+          reschedule();
+        }
+        for (Operation<?> operation : operations) {
+          operation.complete();
+        }
+      }
+    }
+
+    private void drain(final List<Operation<?>> operations) {
+      boolean write = false;
+      for (Operation<?> operation; (operation = pending.poll()) != null; ) {
+        operations.add(operation);
+        write |= operation.write;
+      }
+
+      // the stripe may have been split: run consecutive operations on the same half under one acquisition
+      HeapKeyValueStorage.Stripe held = null;
+      Lock lock = null;
+      try {
+        for (Operation<?> operation : operations) {
+          if (held == null || storage.stripeFor(operation.key) != held) {
+            if (lock != null) {
+              lock.unlock();
+              lock = null;
+            }
+            lock = storage.lockFor(operation.key, write);
+            held = storage.stripeFor(operation.key);
+          }
+          operation.run();
+        }
+      } finally {
+        if (lock != null) {
+          lock.unlock();
+        }
+      }
+    }
+
+    private void reschedule() {
+      try {
+        schedule();
+      } catch (RuntimeException e) {
+        for (Operation<?> operation; (operation = pending.poll()) != null; ) {
+          operation.future.completeExceptionally(e);
+        }
+      }
+    }
+  }
+}
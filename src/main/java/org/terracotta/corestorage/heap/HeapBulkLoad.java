@@ -0,0 +1,283 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright IBM Corp. 2024, 2025
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.corestorage.heap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * A bulk load session populating a {@link HeapKeyValueStorage} that has not been published yet.
+ * <p>
+ * Each {@code load} call splits its source across worker threads, which route the entries by lock stripe to inserting
+ * threads, each filling a partition of the stripes without taking their locks. Entries of the same key are applied
+ * in encounter order. Sessions themselves are not thread-safe and are meant to be driven by a single thread.
+ */
+public class HeapBulkLoad<K, V> {
+
+  static final int BLOCK_SIZE = 1024;
+  static final int BLOCKS_IN_FLIGHT = 4;
+
+  private final HeapKeyValueStorage<K, V> storage;
+  private final Publisher<K, V> publisher;
+  private final int parallelism;
+  private long loaded;
+  private boolean notified;
+  private boolean completed;
+
+  HeapBulkLoad(final HeapKeyValueStorage<K, V> storage) {
+    this(storage, null);
+  }
+
+  HeapBulkLoad(final HeapKeyValueStorage<K, V> storage, final Publisher<K, V> publisher) {
+    this.storage = storage;
+    this.publisher = publisher;
+    this.parallelism = Math.min(Runtime.getRuntime().availableProcessors(), storage.stripeCount());
+  }
+
+  public HeapBulkLoad<K, V> load(final Stream<? extends Map.Entry<? extends K, ? extends V>> entries) {
+    return load(entries.spliterator());
+  }
+
+  /**
+   * Loads all entries of {@code entries}, returning once they are all in the storage.
+   * <p>
+   * Entries are handed from routing to inserting threads in blocks of {@value #BLOCK_SIZE}, at most
+   * {@value #BLOCKS_IN_FLIGHT} blocks per source chunk and partition being buffered. Peak memory therefore doesn't
+   * depend on the source size. A chunk only gets inserted once the chunks preceding it are, so a later chunk stalls
+   * whenever its buffers are full.
+   */
+  public HeapBulkLoad<K, V> load(final Spliterator<? extends Map.Entry<? extends K, ? extends V>> entries) {
+    checkNotCompleted();
+    final List<Spliterator<? extends Map.Entry<? extends K, ? extends V>>> chunks = split(entries);
+    // one queue per chunk and partition, an empty block marking the end of the chunk
+    final List<List<BlockingQueue<List<Map.Entry<? extends K, ? extends V>>>>> routed = new ArrayList<List<BlockingQueue<List<Map.Entry<? extends K, ? extends V>>>>>();
+    final List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+    for (final Spliterator<? extends Map.Entry<? extends K, ? extends V>> chunk : chunks) {
+      final List<BlockingQueue<List<Map.Entry<? extends K, ? extends V>>>> partitions = new ArrayList<BlockingQueue<List<Map.Entry<? extends K, ? extends V>>>>(parallelism);
+      for (int i = 0; i < parallelism; i++) {
+        partitions.add(new ArrayBlockingQueue<List<Map.Entry<? extends K, ? extends V>>>(BLOCKS_IN_FLIGHT));
+      }
+      routed.add(partitions);
+      tasks.add(new Callable<Long>() {
+        @Override
+        public Long call() throws InterruptedException {
+          final Router router = new Router();
+          while (chunk.tryAdvance(router)) {
+            if (router.full >= 0) {
+              partitions.get(router.full).put(router.take(router.full));
+            }
+          }
+          for (int i = 0; i < parallelism; i++) {
+            final List<Map.Entry<? extends K, ? extends V>> block = router.take(i);
+            if (!block.isEmpty()) {
+              partitions.get(i).put(block);
+            }
+            partitions.get(i).put(Collections.<Map.Entry<? extends K, ? extends V>>emptyList());
+          }
+          return 0L;
+        }
+      });
+    }
+
+    for (int i = 0; i < parallelism; i++) {
+      final int partition = i;
+      tasks.add(new Callable<Long>() {
+        @Override
+        public Long call() throws InterruptedException {
+          long count = 0;
+          for (List<BlockingQueue<List<Map.Entry<? extends K, ? extends V>>>> partitions : routed) {
+            final BlockingQueue<List<Map.Entry<? extends K, ? extends V>>> queue = partitions.get(partition);
+            for (List<Map.Entry<? extends K, ? extends V>> block; !(block = queue.take()).isEmpty(); ) {
+              for (Map.Entry<? extends K, ? extends V> entry : block) {
+                storage.putUnlocked(entry.getKey(), entry.getValue());
+              }
+              count += block.size();
+            }
+          }
+          return count;
+        }
+      });
+    }
+
+    // routers and inserters block on each other, so they all need a thread of their own
+    final ExecutorService executor = Executors.newFixedThreadPool(tasks.size(), new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        final Thread thread = new Thread(r, "HeapBulkLoad worker");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    try {
+      loaded += runAll(executor, tasks);
+    } finally {
+      terminate(executor);
+    }
+    return this;
+  }
+
+  public long getLoaded() {
+    return loaded;
+  }
+
+  /**
+   * Ends this session and hands the populated storage over, publishing it when the session was opened through a
+   * {@link HeapStorageManager}. Listeners are notified before publication. Should publication fail, the session stays
+   * open and completing it can be retried, without notifying listeners again.
+   *
+   * @param notifyListeners whether {@link HeapBulkLoadListener}s get a single event for everything loaded
+   * @return the populated storage
+   */
+  public HeapKeyValueStorage<K, V> complete(final boolean notifyListeners) {
+    checkNotCompleted();
+    if (notifyListeners && !notified) {
+      notified = true;
+      storage.notifyLoaded(loaded);
+    }
+    if (publisher != null) {
+      publisher.publish(storage);
+    }
+    completed = true;
+    return storage;
+  }
+
+  private List<Spliterator<? extends Map.Entry<? extends K, ? extends V>>> split(final Spliterator<? extends Map.Entry<? extends K, ? extends V>> entries) {
+    final List<Spliterator<? extends Map.Entry<? extends K, ? extends V>>> chunks = new ArrayList<Spliterator<? extends Map.Entry<? extends K, ? extends V>>>();
+    chunks.add(entries);
+    boolean split = true;
+    while (split && chunks.size() < parallelism) {
+      split = false;
+      for (int i = 0; i < chunks.size() && chunks.size() < parallelism; i++) {
+        final Spliterator<? extends Map.Entry<? extends K, ? extends V>> prefix = chunks.get(i).trySplit();
+        if (prefix != null) {
+          // a split hands out the leading part, which has to stay ahead to keep encounter order
+          chunks.add(i++, prefix);
+          split = true;
+        }
+      }
+    }
+    return chunks;
+  }
+
+  /**
+   * Runs {@code tasks} and sums their results, failing as soon as one of them fails.
+   */
+  private static long runAll(final ExecutorService executor, final List<Callable<Long>> tasks) {
+    final CompletionService<Long> completion = new ExecutorCompletionService<Long>(executor);
+    for (Callable<Long> task : tasks) {
+      completion.submit(task);
+    }
+    long sum = 0;
+    try {
+      for (int i = 0; i < tasks.size(); i++) {
+        sum += completion.take().get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while bulk loading", e);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      } else if (cause instanceof Error) {
+        throw (Error)cause;
+      } else {
+        throw new IllegalStateException(cause);
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Interrupts the workers still running, after a failed or interrupted load, and waits for them to stop writing.
+   */
+  private static void terminate(final ExecutorService executor) {
+    executor.shutdownNow();
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          if (executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+            return;
+          }
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void checkNotCompleted() {
+    if (completed) {
+      throw new IllegalStateException("Bulk load already completed");
+    }
+  }
+
+  interface Publisher<K, V> {
+
+    void publish(HeapKeyValueStorage<K, V> storage);
+  }
+
+  /**
+   * Buffers entries per partition, flagging the partition whose block just filled up.
+   */
+  private class Router implements Consumer<Map.Entry<? extends K, ? extends V>> {
+
+    private final List<List<Map.Entry<? extends K, ? extends V>>> blocks = new ArrayList<List<Map.Entry<? extends K, ? extends V>>>(parallelism);
+    private int full = -1;
+
+    Router() {
+      for (int i = 0; i < parallelism; i++) {
+        blocks.add(new ArrayList<Map.Entry<? extends K, ? extends V>>(BLOCK_SIZE));
+      }
+    }
+
+    @Override
+    public void accept(final Map.Entry<? extends K, ? extends V> entry) {
+      final int partition = storage.stripeIndex(entry.getKey()) % parallelism;
+      final List<Map.Entry<? extends K, ? extends V>> block = blocks.get(partition);
+      block.add(entry);
+      if (block.size() == BLOCK_SIZE) {
+        full = partition;
+      }
+    }
+
+    List<Map.Entry<? extends K, ? extends V>> take(final int partition) {
+      full = -1;
+      return blocks.set(partition, new ArrayList<Map.Entry<? extends K, ? extends V>>(BLOCK_SIZE));
+    }
+  }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright IBM Corp. 2024, 2025
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.corestorage.heap;
+
+/**
+ * Implemented by mutation listeners that want a single summary event at the end of a bulk load, in place of the
+ * per-entry {@code added} events a bulk load does not emit.
+ */
+public interface HeapBulkLoadListener {
+
+  void loaded(long count);
+}
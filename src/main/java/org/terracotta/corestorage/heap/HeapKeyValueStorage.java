@@ -27,18 +27,33 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-
+/**
+ * Heap backed {@link KeyValueStorage} guarding its keys with striped read-write locks.
+ * <p>
+ * Stripes adapt to skewed access: a stripe that keeps being found locked is split in two, each half covering the keys
+ * of the next hash bit, at most {@code MAX_SPLIT_DEPTH} levels deep. Splitting only needs the write lock of the stripe being
+ * split, so the rest of the storage stays available meanwhile. Stripes never merge back.
+ */
 public class HeapKeyValueStorage<K, V> implements KeyValueStorage<K, V> {
 
-  private final ConcurrentMap<K, V> store = new ConcurrentHashMap<K, V>();
+  static final int DEFAULT_CONCURRENCY = 512;
+  static final int DEFAULT_INITIAL_CAPACITY = 16;
+  static final int MAX_SPLIT_DEPTH = 4;
+  static final long DEFAULT_SPLIT_THRESHOLD = 1024;
+
+  private final ConcurrentMap<K, V> store;
 
-  private final ReadWriteLock[] locks;
+  private final Stripe[] stripes;
   private final int segmentShift;
   private final int segmentMask;
+  private final int maxSplitDepth;
+  private final long splitThreshold;
   private final Collection<KeyValueStorageMutationListener<? super K, ? super V>> mutationListeners;
 
   public HeapKeyValueStorage() {
@@ -46,10 +61,19 @@ public class HeapKeyValueStorage<K, V> implements KeyValueStorage<K, V> {
   }
 
   public HeapKeyValueStorage(final List<? extends KeyValueStorageMutationListener<? super K, ? super V>> mutationListeners) {
-    this(mutationListeners, 512);
+    this(mutationListeners, DEFAULT_CONCURRENCY);
   }
 
   public HeapKeyValueStorage(final List<? extends KeyValueStorageMutationListener<? super K, ? super V>> mutationListeners, final int concurrency) {
+    this(mutationListeners, concurrency, DEFAULT_INITIAL_CAPACITY);
+  }
+
+  public HeapKeyValueStorage(final List<? extends KeyValueStorageMutationListener<? super K, ? super V>> mutationListeners, final int concurrency, final int initialCapacity) {
+    this(mutationListeners, concurrency, initialCapacity, DEFAULT_SPLIT_THRESHOLD);
+  }
+
+  HeapKeyValueStorage(final List<? extends KeyValueStorageMutationListener<? super K, ? super V>> mutationListeners, final int concurrency, final int initialCapacity, final long splitThreshold) {
+    this.store = new ConcurrentHashMap<K, V>(initialCapacity);
     int sshift = 0;
     int ssize = 1;
     while (ssize < concurrency) {
@@ -58,9 +82,11 @@ public class HeapKeyValueStorage<K, V> implements KeyValueStorage<K, V> {
     }
     segmentShift = 32 - sshift;
     segmentMask = ssize - 1;
-    this.locks = new ReadWriteLock[concurrency];
-    for (int i = 0, locksLength = locks.length; i < locksLength; i++) {
-      locks[i] = new ReentrantReadWriteLock();
+    this.maxSplitDepth = Math.min(MAX_SPLIT_DEPTH, segmentShift);
+    this.splitThreshold = splitThreshold;
+    this.stripes = new Stripe[ssize];
+    for (int i = 0, stripesLength = stripes.length; i < stripesLength; i++) {
+      stripes[i] = new Stripe(i, 0, 0);
     }
     if (mutationListeners == null || mutationListeners.isEmpty()) {
       this.mutationListeners = Collections.emptyList();
@@ -69,6 +95,17 @@ public class HeapKeyValueStorage<K, V> implements KeyValueStorage<K, V> {
     }
   }
 
+  /**
+   * Starts a bulk load into a fresh, unpublished storage pre-sized for {@code expectedSize} entries.
+   * <p>
+   * Entries loaded through the returned session bypass stripe locking and per-entry listener notification, so the
+   * storage must not be shared with other threads until {@link HeapBulkLoad#complete(boolean)} returned it. Loading
+   * only buffers a bounded number of entries in flight, see {@link HeapBulkLoad#load(java.util.Spliterator)}.
+   */
+  public static <K, V> HeapBulkLoad<K, V> bulkLoad(final List<? extends KeyValueStorageMutationListener<? super K, ? super V>> mutationListeners, final int expectedSize) {
+    return new HeapBulkLoad<K, V>(new HeapKeyValueStorage<K, V>(mutationListeners, DEFAULT_CONCURRENCY, expectedSize));
+  }
+
   @Override
   public Set<K> keySet() {
     return store.keySet();
@@ -90,11 +127,9 @@ public class HeapKeyValueStorage<K, V> implements KeyValueStorage<K, V> {
   }
 
   public void put(final K key, final V value, byte metadata) {
-    final Lock lock = getLockFor(key).writeLock();
-    lock.lock();
+    final Lock lock = lockFor(key, true);
     try {
-      store.put(key, value);
-      notifyAdd(key, value, metadata);
+      doPut(key, value, metadata);
     } finally {
       lock.unlock();
     }
@@ -102,10 +137,9 @@ public class HeapKeyValueStorage<K, V> implements KeyValueStorage<K, V> {
   
   @Override
   public V get(final K key) {
-    final Lock lock = getLockFor(key).readLock();
-    lock.lock();
+    final Lock lock = lockFor(key, false);
     try {
-      return store.get(key);
+      return doGet(key);
     } finally {
       lock.unlock();
     }
@@ -113,16 +147,9 @@ public class HeapKeyValueStorage<K, V> implements KeyValueStorage<K, V> {
 
   @Override
   public boolean remove(final K key) {
-    final Lock lock = getLockFor(key).writeLock();
-    lock.lock();
+    final Lock lock = lockFor(key, true);
     try {
-      final V previous = store.remove(key);
-      if (previous != null) {
-        notifyRemove(key, previous);
-        return true;
-      } else {
-        return false;
-      }
+      return doRemove(key);
     } finally {
       lock.unlock();
     }
@@ -137,15 +164,49 @@ public class HeapKeyValueStorage<K, V> implements KeyValueStorage<K, V> {
 
   @Override
   public boolean containsKey(final K key) {
-    final Lock lock = getLockFor(key).readLock();
-    lock.lock();
+    final Lock lock = lockFor(key, false);
     try {
-      return store.containsKey(key);
+      return doContainsKey(key);
     } finally {
       lock.unlock();
     }
   }
 
+  void doPut(final K key, final V value, final byte metadata) {
+    store.put(key, value);
+    notifyAdd(key, value, metadata);
+  }
+
+  V doGet(final K key) {
+    return store.get(key);
+  }
+
+  boolean doRemove(final K key) {
+    final V previous = store.remove(key);
+    if (previous != null) {
+      notifyRemove(key, previous);
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  boolean doContainsKey(final K key) {
+    return store.containsKey(key);
+  }
+
+  void putUnlocked(final K key, final V value) {
+    store.put(key, value);
+  }
+
+  void notifyLoaded(final long count) {
+    for (KeyValueStorageMutationListener<? super K, ? super V> mutationListener : mutationListeners) {
+      if (mutationListener instanceof HeapBulkLoadListener) {
+        ((HeapBulkLoadListener)mutationListener).loaded(count);
+      }
+    }
+  }
+
   private void notifyAdd(final K key, final V value, byte metadata) {
     for (KeyValueStorageMutationListener<? super K, ? super V> mutationListener : mutationListeners) {
       mutationListener.added(new HeapRetriever<K>(key), new HeapRetriever<V>(value), metadata);
@@ -158,8 +219,74 @@ public class HeapKeyValueStorage<K, V> implements KeyValueStorage<K, V> {
     }
   }
 
-  private ReadWriteLock getLockFor(K key) {
-    return locks[(spread(key.hashCode()) >>> segmentShift) & segmentMask];
+  /**
+   * Returns a snapshot of every stripe, each split stripe followed by its halves. Split stripes keep the counts they
+   * gathered before splitting, so totals over the snapshot never go down.
+   */
+  public List<HeapStripeUtilization> getStripeUtilization() {
+    final List<HeapStripeUtilization> utilization = new ArrayList<HeapStripeUtilization>(stripes.length);
+    for (Stripe stripe : stripes) {
+      stripe.collect(utilization);
+    }
+    return utilization;
+  }
+
+  /**
+   * Acquires the lock of the stripe currently covering {@code key}, splitting that stripe first when it turned hot.
+   */
+  Lock lockFor(final K key, final boolean write) {
+    final int hash = spread(key.hashCode());
+    while (true) {
+      final Stripe stripe = stripeFor(hash);
+      final Lock lock = write ? stripe.lock.writeLock() : stripe.lock.readLock();
+      // barging readers could starve a queued writer, so they only try when nobody waits
+      if (!((write || !stripe.lock.hasQueuedThreads()) && lock.tryLock())) {
+        if (stripe.contended(maxSplitDepth, splitThreshold)) {
+          split(stripe);
+          continue;
+        }
+        lock.lock();
+      }
+      if (stripe.children == null) {
+        stripe.acquisitions.increment();
+        return lock;
+      }
+      // split while we were waiting, the key is now covered by one of the halves
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Resolves the stripe covering {@code key}, which stays stable for as long as that stripe's lock is held.
+   */
+  Stripe stripeFor(final K key) {
+    return stripeFor(spread(key.hashCode()));
+  }
+
+  private Stripe stripeFor(final int hash) {
+    Stripe stripe = stripes[(hash >>> segmentShift) & segmentMask];
+    for (Stripe[] children; (children = stripe.children) != null; ) {
+      stripe = children[(hash >>> (segmentShift - 1 - stripe.depth)) & 1];
+    }
+    return stripe;
+  }
+
+  private void split(final Stripe stripe) {
+    final Lock lock = stripe.lock.writeLock();
+    lock.lock();
+    try {
+      stripe.children = new Stripe[] { stripe.half(0), stripe.half(1) };
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int stripeIndex(K key) {
+    return (spread(key.hashCode()) >>> segmentShift) & segmentMask;
+  }
+
+  int stripeCount() {
+    return stripes.length;
   }
 
   private static int spread(int hash) {
@@ -200,6 +327,50 @@ public class HeapKeyValueStorage<K, V> implements KeyValueStorage<K, V> {
     result = 31 * result + mutationListeners.hashCode();
     return result;
   }
+
+  static final class Stripe {
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final int index;
+    private final int depth;
+    private final int path;
+    private final LongAdder acquisitions = new LongAdder();
+    private final AtomicLong contentions = new AtomicLong();
+    private final AtomicBoolean splitting = new AtomicBoolean();
+    private volatile Stripe[] children;
+
+    private Stripe(final int index, final int depth, final int path) {
+      this.index = index;
+      this.depth = depth;
+      this.path = path;
+    }
+
+    private Stripe half(final int bit) {
+      return new Stripe(index, depth + 1, (path << 1) | bit);
+    }
+
+    /**
+     * Records a contended acquisition and tells whether the caller should split this stripe, which only one caller
+     * ever gets told.
+     */
+    private boolean contended(final int maxSplitDepth, final long splitThreshold) {
+      final long contended = contentions.incrementAndGet();
+      return depth < maxSplitDepth
+             && contended >= splitThreshold
+             && contended * 8 >= acquisitions.sum()
+             && splitting.compareAndSet(false, true);
+    }
+
+    private void collect(final List<HeapStripeUtilization> utilization) {
+      final Stripe[] halves = children;
+      utilization.add(new HeapStripeUtilization(index, depth, path, halves != null, acquisitions.sum(), contentions.get()));
+      if (halves != null) {
+        for (Stripe half : halves) {
+          half.collect(utilization);
+        }
+      }
+    }
+  }
 }
 class HeapRetriever<T> implements Retriever<T> {
 
@@ -29,6 +29,10 @@ public class HeapKeyValueStorageFactory implements KeyValueStorageFactory {
   
   @Override
   public <K, V> KeyValueStorage<K, V> create(final KeyValueStorageConfig<K, V> config) {
+    return create(config, HeapKeyValueStorage.DEFAULT_INITIAL_CAPACITY);
+  }
+
+  public <K, V> HeapKeyValueStorage<K, V> create(final KeyValueStorageConfig<K, V> config, final int initialCapacity) {
 
     List<? extends KeyValueStorageMutationListener<? super K, ? super V>> mutationListeners = null;
 
@@ -36,7 +40,7 @@ public class HeapKeyValueStorageFactory implements KeyValueStorageFactory {
       mutationListeners = config.getMutationListeners();
     }
 
-    return new HeapKeyValueStorage<K, V>(mutationListeners);
+    return new HeapKeyValueStorage<K, V>(mutationListeners, HeapKeyValueStorage.DEFAULT_CONCURRENCY, initialCapacity);
   }
   
   public MonitoredResource getHeapResource() {
@@ -0,0 +1,117 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright IBM Corp. 2024, 2025
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.corestorage.heap;
+
+import org.terracotta.corestorage.KeyValueStorage;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link KeyValueStorage} resolved once from a {@link HeapStorageManager}, for callers that would otherwise look the
+ * storage up on every operation.
+ * <p>
+ * Handles may be typed with supertypes of the configured key and value classes, in which case keys and values being
+ * put are checked against the configured classes. A handle fails with an {@link IllegalStateException} once its
+ * storage got destroyed or its manager closed.
+ */
+public class HeapKeyValueStorageHandle<K, V> implements KeyValueStorage<K, V> {
+
+  private final String alias;
+  private final KeyValueStorage<K, V> storage;
+  private final Class<?> keyCheck;
+  private final Class<?> valueCheck;
+  private final AtomicBoolean valid;
+
+  HeapKeyValueStorageHandle(final String alias, final KeyValueStorage<K, V> storage, final Class<?> keyCheck, final Class<?> valueCheck, final AtomicBoolean valid) {
+    this.alias = alias;
+    this.storage = storage;
+    this.keyCheck = keyCheck;
+    this.valueCheck = valueCheck;
+    this.valid = valid;
+  }
+
+  public String getAlias() {
+    return alias;
+  }
+
+  public boolean isValid() {
+    return valid.get();
+  }
+
+  @Override
+  public Set<K> keySet() {
+    return storage().keySet();
+  }
+
+  @Override
+  public Collection<V> values() {
+    return storage().values();
+  }
+
+  @Override
+  public long size() {
+    return storage().size();
+  }
+
+  @Override
+  public void put(final K key, final V value) {
+    final KeyValueStorage<K, V> storage = storage();
+    checkType(keyCheck, key);
+    checkType(valueCheck, value);
+    storage.put(key, value);
+  }
+
+  @Override
+  public V get(final K key) {
+    return storage().get(key);
+  }
+
+  @Override
+  public boolean remove(final K key) {
+    return storage().remove(key);
+  }
+
+  @Override
+  public void removeAll(final Collection<K> keys) {
+    storage().removeAll(keys);
+  }
+
+  @Override
+  public boolean containsKey(final K key) {
+    return storage().containsKey(key);
+  }
+
+  @Override
+  public void clear() {
+    storage().clear();
+  }
+
+  private KeyValueStorage<K, V> storage() {
+    if (!valid.get()) {
+      throw new IllegalStateException("Storage for alias " + alias + " was destroyed or its manager closed");
+    }
+    return storage;
+  }
+
+  private static void checkType(final Class<?> type, final Object value) {
+    if (type != null && value != null && !type.isInstance(value)) {
+      throw new IllegalArgumentException(value.getClass().getName() + " isn't a " + type.getName());
+    }
+  }
+}
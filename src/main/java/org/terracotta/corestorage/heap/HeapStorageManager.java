@@ -24,10 +24,10 @@ import org.terracotta.corestorage.monitoring.MonitoredResource;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class HeapStorageManager implements StorageManager {
 
@@ -61,19 +61,24 @@ public class HeapStorageManager implements StorageManager {
   }
 
   @Override
-  public Future<Void> start() {
-    final FutureTask<Void> future = new FutureTask<Void>(new Runnable() {
+  public CompletableFuture<Void> start() {
+    final CompletableFuture<Void> future = new CompletableFuture<Void>();
+    new Thread(new Runnable() {
       @Override
       public void run() {
-        for (Map.Entry<String, KeyValueStorageConfig<?, ?>> mapConfigEntry : configs.entrySet()) {
-          final KeyValueStorage<?, ?> map = factory.create(mapConfigEntry.getValue());
-          final String mapAlias = mapConfigEntry.getKey();
-          registerMap(mapAlias, map, mapConfigEntry.getValue().getKeyClass(), mapConfigEntry.getValue().getValueClass());
+        try {
+          for (Map.Entry<String, KeyValueStorageConfig<?, ?>> mapConfigEntry : configs.entrySet()) {
+            final KeyValueStorage<?, ?> map = factory.create(mapConfigEntry.getValue());
+            final String mapAlias = mapConfigEntry.getKey();
+            registerMap(mapAlias, map, mapConfigEntry.getValue().getKeyClass(), mapConfigEntry.getValue().getValueClass());
+          }
+          status = Status.STARTED;
+          future.complete(null);
+        } catch (Throwable t) {
+          future.completeExceptionally(t);
         }
-        status = Status.STARTED;
       }
-    }, null);
-    new Thread(future).start();
+    }).start();
     return future;
   }
 
@@ -96,6 +101,28 @@ public class HeapStorageManager implements StorageManager {
     }
   }
 
+  /**
+   * Opens a bulk load session for a new storage registered under {@code alias}. The alias is reserved right away, but
+   * the storage only becomes visible through this manager once the session completes. Destroying the alias drops the
+   * reservation of a session that won't complete.
+   */
+  public <K, V> HeapBulkLoad<K, V> bulkLoadKeyValueStorage(final String alias, final KeyValueStorageConfig<K, V> config, final int expectedSize) throws IllegalStateException {
+    checkIsStarted();
+    final MapHolder<K, V> reservation = new MapHolder<K, V>(null, config.getKeyClass(), config.getValueClass());
+    if (maps.putIfAbsent(alias, reservation) != null) {
+      throw new IllegalStateException("Duplicated map for alias: " + alias);
+    }
+    return new HeapBulkLoad<K, V>(factory.create(config, expectedSize), new HeapBulkLoad.Publisher<K, V>() {
+      @Override
+      public void publish(final HeapKeyValueStorage<K, V> storage) {
+        checkIsStarted();
+        if (!maps.replace(alias, reservation, new MapHolder<K, V>(storage, config.getKeyClass(), config.getValueClass()))) {
+          throw new IllegalStateException("Alias " + alias + " was destroyed while bulk loading");
+        }
+      }
+    });
+  }
+
   @Override
   public void destroyKeyValueStorage(String name) {
     checkIsStarted();
@@ -109,6 +136,16 @@ public class HeapStorageManager implements StorageManager {
     return mapHolder == null ? null : mapHolder.getMap(keyClass, valueClass);
   }
 
+  /**
+   * Resolves a handle on the storage registered under {@code alias}, typed with the given classes or any of their
+   * supertypes. The handle stays usable until that storage is destroyed or this manager is closed.
+   */
+  public <K, V> HeapKeyValueStorageHandle<K, V> getKeyValueStorageHandle(String alias, Class<K> keyClass, Class<V> valueClass) {
+    checkIsStarted();
+    final MapHolder<?, ?> mapHolder = maps.get(alias);
+    return mapHolder == null ? null : mapHolder.getHandle(alias, keyClass, valueClass);
+  }
+
   @Override
   public void begin() {
     checkIsStarted();
@@ -126,7 +163,10 @@ public class HeapStorageManager implements StorageManager {
   }
 
   private void unregisterMap(final String name) {
-    maps.remove(name);
+    final MapHolder<?, ?> mapHolder = maps.remove(name);
+    if (mapHolder != null) {
+      mapHolder.invalidate();
+    }
   }
 
   private void checkIsStarted() {
@@ -144,9 +184,11 @@ public class HeapStorageManager implements StorageManager {
 
   private static class MapHolder<K, V> {
 
+    // null while reserved by a bulk load
     private final KeyValueStorage<K, V> map;
     private final Class<K> keyClass;
     private final Class<V> valueClass;
+    private final AtomicBoolean valid = new AtomicBoolean(true);
 
     private MapHolder(final KeyValueStorage<K, V> map, final Class<K> keyClass, final Class<V> valueClass) {
       this.map = map;
@@ -155,10 +197,29 @@ public class HeapStorageManager implements StorageManager {
     }
 
     public KeyValueStorage<K, V> getMap(final Class<?> keyClass, final Class<?> valueClass) {
+      if (map == null) {
+        return null;
+      }
       if ((keyClass != this.keyClass) || (valueClass != this.valueClass)) {
         throw new IllegalArgumentException("Classes don't match!");
       }
       return map;
     }
+
+    @SuppressWarnings("unchecked")
+    public <A, B> HeapKeyValueStorageHandle<A, B> getHandle(final String alias, final Class<A> keyClass, final Class<B> valueClass) {
+      if (map == null) {
+        return null;
+      }
+      if (!keyClass.isAssignableFrom(this.keyClass) || !valueClass.isAssignableFrom(this.valueClass)) {
+        throw new IllegalArgumentException("Classes don't match!");
+      }
+      return new HeapKeyValueStorageHandle<A, B>(alias, (KeyValueStorage<A, B>)map,
+          keyClass == this.keyClass ? null : this.keyClass, valueClass == this.valueClass ? null : this.valueClass, valid);
+    }
+
+    private void invalidate() {
+      valid.set(false);
+    }
   }
 }
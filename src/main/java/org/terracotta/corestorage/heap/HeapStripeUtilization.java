@@ -0,0 +1,84 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright IBM Corp. 2024, 2025
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.corestorage.heap;
+
+/**
+ * Point in time usage of one lock stripe of a {@link HeapKeyValueStorage}.
+ */
+public class HeapStripeUtilization {
+
+  private final int stripe;
+  private final int depth;
+  private final int path;
+  private final boolean split;
+  private final long acquisitions;
+  private final long contentions;
+
+  HeapStripeUtilization(final int stripe, final int depth, final int path, final boolean split, final long acquisitions, final long contentions) {
+    this.stripe = stripe;
+    this.depth = depth;
+    this.path = path;
+    this.split = split;
+    this.acquisitions = acquisitions;
+    this.contentions = contentions;
+  }
+
+  /**
+   * Index of the top-level stripe this one is, or was split from.
+   */
+  public int getStripe() {
+    return stripe;
+  }
+
+  /**
+   * Number of splits leading to this stripe, {@code 0} for a stripe never split.
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * The {@link #getDepth()} hash bits, following the top-level stripe ones, that select this stripe among the halves
+   * of its top-level stripe.
+   */
+  public int getPath() {
+    return path;
+  }
+
+  /**
+   * Whether this stripe got split, its counts then only covering the time before the split.
+   */
+  public boolean isSplit() {
+    return split;
+  }
+
+  public long getAcquisitions() {
+    return acquisitions;
+  }
+
+  /**
+   * Number of times the lock was found held when trying to acquire it.
+   */
+  public long getContentions() {
+    return contentions;
+  }
+
+  @Override
+  public String toString() {
+    return "HeapStripeUtilization{stripe=" + stripe + ", depth=" + depth + ", path=" + path + ", split=" + split + ", acquisitions=" + acquisitions + ", contentions=" + contentions + "}";
+  }
+}
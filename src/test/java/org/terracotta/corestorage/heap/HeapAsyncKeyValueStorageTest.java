@@ -0,0 +1,164 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright IBM Corp. 2024, 2025
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.corestorage.heap;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class HeapAsyncKeyValueStorageTest {
+
+  @Test
+  public void testPutGetRemove() throws Exception {
+    HeapKeyValueStorage<Integer, String> storage = new HeapKeyValueStorage<Integer, String>();
+    HeapAsyncKeyValueStorage<Integer, String> async = new HeapAsyncKeyValueStorage<Integer, String>(storage);
+    final int maxKey = 1000;
+    final List<CompletableFuture<Void>> puts = new ArrayList<CompletableFuture<Void>>();
+    for(int i = 0; i < maxKey; i++) {
+      puts.add(async.put(i, Integer.toHexString(i)));
+    }
+    CompletableFuture.allOf(puts.toArray(new CompletableFuture<?>[puts.size()])).get();
+    for(int i = 0; i < maxKey; i++) {
+      assertThat(async.get(i).get(), equalTo(Integer.toHexString(i)));
+      assertThat(storage.get(i), equalTo(Integer.toHexString(i)));
+    }
+    assertThat(async.remove(1).get(), is(true));
+    assertThat(async.remove(1).get(), is(false));
+    assertThat(async.containsKey(1).get(), is(false));
+    assertThat(async.get(1).get(), nullValue());
+  }
+
+  @Test
+  public void testCoalescesQueuedOperationsInSubmissionOrder() throws Exception {
+    final List<Runnable> scheduled = new ArrayList<Runnable>();
+    HeapKeyValueStorage<Integer, String> storage = new HeapKeyValueStorage<Integer, String>();
+    HeapAsyncKeyValueStorage<Integer, String> async = new HeapAsyncKeyValueStorage<Integer, String>(storage, new Executor() {
+      @Override
+      public void execute(final Runnable command) {
+        scheduled.add(command);
+      }
+    });
+    final CompletableFuture<Void> first = async.put(42, "one");
+    final CompletableFuture<String> read = async.get(42);
+    final CompletableFuture<Void> second = async.put(42, "two");
+    final CompletableFuture<Boolean> removed = async.remove(42);
+    final CompletableFuture<Void> third = async.put(42, "three");
+    assertThat(scheduled.size(), is(1));
+    assertThat(read.isDone(), is(false));
+
+    scheduled.remove(0).run();
+    assertThat(scheduled.size(), is(0));
+    assertThat(first.isDone(), is(true));
+    assertThat(read.get(), equalTo("one"));
+    assertThat(second.isDone(), is(true));
+    assertThat(removed.get(), is(true));
+    assertThat(third.isDone(), is(true));
+    assertThat(storage.get(42), equalTo("three"));
+  }
+
+  @Test
+  public void testFailedDrainFailsItsOperationsAndKeepsDraining() throws Exception {
+    final List<Runnable> scheduled = new ArrayList<Runnable>();
+    HeapKeyValueStorage<Object, String> storage = new HeapKeyValueStorage<Object, String>(null, 1);
+    HeapAsyncKeyValueStorage<Object, String> async = new HeapAsyncKeyValueStorage<Object, String>(storage, new Executor() {
+      @Override
+      public void execute(final Runnable command) {
+        scheduled.add(command);
+      }
+    });
+    final Object poisoned = new Object() {
+      private int hashed;
+
+      @Override
+      public int hashCode() {
+        if (hashed++ > 0) {
+          throw new IllegalStateException("poisoned");
+        }
+        return 0;
+      }
+    };
+    final CompletableFuture<Void> failing = async.put(poisoned, "poisoned");
+    final CompletableFuture<Void> queued = async.put(42, "queued");
+    try {
+      scheduled.remove(0).run();
+      fail();
+    } catch (IllegalStateException e) {
+      // expected!
+    }
+    assertThat(failing.isCompletedExceptionally(), is(true));
+    assertThat(queued.isCompletedExceptionally(), is(true));
+
+    final CompletableFuture<Void> next = async.put(42, "next");
+    assertThat(scheduled.size(), is(1));
+    scheduled.remove(0).run();
+    next.get();
+    assertThat(storage.get(42), equalTo("next"));
+  }
+
+  @Test
+  public void testDependentStageCanWaitOnSameStripe() throws Exception {
+    HeapKeyValueStorage<Integer, Integer> storage = new HeapKeyValueStorage<Integer, Integer>(null, 1);
+    final HeapAsyncKeyValueStorage<Integer, Integer> async = new HeapAsyncKeyValueStorage<Integer, Integer>(storage);
+    final CompletableFuture<Integer> dependent;
+    // holding the lock makes the dependent stage run on the drain thread
+    final Lock lock = storage.lockFor(1, true);
+    try {
+      dependent = async.put(1, 1).thenApply(new Function<Void, Integer>() {
+        @Override
+        public Integer apply(final Void ignored) {
+          return async.get(1).join();
+        }
+      });
+    } finally {
+      lock.unlock();
+    }
+    assertThat(dependent.get(10, TimeUnit.SECONDS), is(1));
+    assertThat(async.get(1).get(10, TimeUnit.SECONDS), is(1));
+  }
+
+  @Test
+  public void testBulkOperations() throws Exception {
+    HeapAsyncKeyValueStorage<Integer, String> async = new HeapAsyncKeyValueStorage<Integer, String>(new HeapKeyValueStorage<Integer, String>());
+    final Map<Integer, String> entries = new HashMap<Integer, String>();
+    for(int i = 0; i < 100; i++) {
+      entries.put(i, Integer.toHexString(i));
+    }
+    async.putAll(entries).get();
+    assertThat(async.getAll(entries.keySet()).get(), equalTo(entries));
+    async.removeAll(Arrays.asList(1, 2, 3)).get();
+    entries.remove(1);
+    entries.remove(2);
+    entries.remove(3);
+    assertThat(async.getAll(Arrays.asList(1, 2, 3, 4)).get().size(), is(1));
+    assertThat(async.getAll(entries.keySet()).get(), equalTo(entries));
+  }
+}
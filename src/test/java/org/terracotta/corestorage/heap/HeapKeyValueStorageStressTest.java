@@ -0,0 +1,366 @@
+/*
+ * Copyright Terracotta, Inc.
+ * Copyright IBM Corp. 2024, 2025
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terracotta.corestorage.heap;
+
+import org.junit.Test;
+import org.terracotta.corestorage.KeyValueStorageMutationListener;
+import org.terracotta.corestorage.Retriever;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Randomized concurrent workloads against {@link HeapKeyValueStorage}, checking every recorded history for
+ * linearizability and listener events against the final content.
+ * <p>
+ * Each test runs rounds for {@code heap.stress.seconds} seconds (1 by default, see the {@code soak} profile). A
+ * failure reports the seed of its round, from which the whole workload derives. Linearizability is checked key by
+ * key, which is sound as it composes across independent objects: bulk operations are recorded as one operation per
+ * key they cover, {@code clear} and {@code removeAll} as removals with no observable result.
+ */
+public class HeapKeyValueStorageStressTest {
+
+  private static final long DURATION = TimeUnit.SECONDS.toNanos(Long.getLong("heap.stress.seconds", 1L));
+  private static final int THREADS = 4;
+  private static final int OPERATIONS = 200;
+  private static final int KEYS = 16;
+
+  @Test
+  public void testHistoriesAreLinearizable() throws Exception {
+    final long end = System.nanoTime() + DURATION;
+    final Random seeds = new Random();
+    do {
+      final long seed = seeds.nextLong();
+      final HeapKeyValueStorage<Integer, Integer> storage = new HeapKeyValueStorage<Integer, Integer>(null, 4, 16, 8);
+      checkLinearizable(seed, run(seed, storage, true, false));
+    } while (System.nanoTime() < end);
+  }
+
+  @Test
+  public void testAsyncHistoriesAreLinearizable() throws Exception {
+    final long end = System.nanoTime() + DURATION;
+    final Random seeds = new Random();
+    do {
+      final long seed = seeds.nextLong();
+      final HeapKeyValueStorage<Integer, Integer> storage = new HeapKeyValueStorage<Integer, Integer>(null, 4, 16, 8);
+      checkLinearizable(seed, run(seed, storage, true, true));
+    } while (System.nanoTime() < end);
+  }
+
+  @Test
+  public void testListenerEventsMatchFinalState() throws Exception {
+    final long end = System.nanoTime() + DURATION;
+    final Random seeds = new Random();
+    do {
+      final long seed = seeds.nextLong();
+      final RecordingListener listener = new RecordingListener();
+      final HeapKeyValueStorage<Integer, Integer> storage = new HeapKeyValueStorage<Integer, Integer>(Collections.singletonList(listener), 4, 16, 8);
+      // clear() doesn't notify listeners, so it's left out of this workload
+      final List<Operation> history = run(seed, storage, false, (seed & 1) == 0);
+      checkLinearizable(seed, history);
+      for (int key = 0; key < KEYS; key++) {
+        final List<Integer> events = listener.events(key);
+        boolean present = false;
+        for (Integer event : events) {
+          if (event == null && !present) {
+            fail("Seed " + seed + ": key " + key + " removed while absent, events " + events);
+          }
+          present = event != null;
+        }
+        final Integer expected = events.isEmpty() ? null : events.get(events.size() - 1);
+        assertThat("Seed " + seed + ": key " + key + ", events " + events, storage.get(key), equalTo(expected));
+      }
+    } while (System.nanoTime() < end);
+  }
+
+  private static List<Operation> run(final long seed, final HeapKeyValueStorage<Integer, Integer> storage, final boolean clear, final boolean async) throws Exception {
+    final HeapAsyncKeyValueStorage<Integer, Integer> asyncStorage = new HeapAsyncKeyValueStorage<Integer, Integer>(storage);
+    final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+    final List<List<Operation>> histories = new ArrayList<List<Operation>>();
+    final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < THREADS; t++) {
+      final int thread = t;
+      final List<Operation> history = new ArrayList<Operation>();
+      histories.add(history);
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          final Random random = new Random(seed + thread);
+          try {
+            barrier.await();
+            for (int i = 0; i < OPERATIONS; i++) {
+              perform(random, storage, async ? asyncStorage : null, clear, thread * OPERATIONS + i, history);
+            }
+          } catch (Throwable e) {
+            failures.add(e);
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (!failures.isEmpty()) {
+      throw new AssertionError("Seed " + seed + ": workload failed with " + failures);
+    }
+    final List<Operation> history = new ArrayList<Operation>();
+    for (List<Operation> threadHistory : histories) {
+      history.addAll(threadHistory);
+    }
+    return history;
+  }
+
+  private static void perform(final Random random, final HeapKeyValueStorage<Integer, Integer> storage, final HeapAsyncKeyValueStorage<Integer, Integer> async,
+                              final boolean clear, final int value, final List<Operation> history) {
+    final Integer key = nextKey(random);
+    final int choice = random.nextInt(100);
+    final long invoked = System.nanoTime();
+    if (choice < 35) {
+      if (async == null) {
+        storage.put(key, value);
+      } else {
+        async.put(key, value).join();
+      }
+      history.add(new Operation(Type.PUT, key, value, null, invoked, System.nanoTime()));
+    } else if (choice < 65) {
+      final Integer result = async == null ? storage.get(key) : async.get(key).join();
+      history.add(new Operation(Type.GET, key, null, result, invoked, System.nanoTime()));
+    } else if (choice < 80) {
+      final Boolean result = async == null ? storage.remove(key) : async.remove(key).join();
+      history.add(new Operation(Type.REMOVE, key, null, result, invoked, System.nanoTime()));
+    } else if (choice < 90) {
+      final Boolean result = async == null ? storage.containsKey(key) : async.containsKey(key).join();
+      history.add(new Operation(Type.CONTAINS, key, null, result, invoked, System.nanoTime()));
+    } else if (choice < 98 || !clear) {
+      final Set<Integer> keys = new HashSet<Integer>();
+      for (int i = random.nextInt(4) + 1; i > 0; i--) {
+        keys.add(nextKey(random));
+      }
+      final int bulk = async == null ? 0 : random.nextInt(3);
+      if (bulk == 0) {
+        if (async == null) {
+          storage.removeAll(keys);
+        } else {
+          async.removeAll(keys).join();
+        }
+        final long responded = System.nanoTime();
+        for (Integer removed : keys) {
+          history.add(new Operation(Type.BLIND_REMOVE, removed, null, null, invoked, responded));
+        }
+      } else if (bulk == 1) {
+        final Map<Integer, Integer> entries = new HashMap<Integer, Integer>();
+        for (Integer put : keys) {
+          entries.put(put, value);
+        }
+        async.putAll(entries).join();
+        final long responded = System.nanoTime();
+        for (Integer put : keys) {
+          history.add(new Operation(Type.PUT, put, value, null, invoked, responded));
+        }
+      } else {
+        final Map<Integer, Integer> values = async.getAll(keys).join();
+        final long responded = System.nanoTime();
+        for (Integer read : keys) {
+          history.add(new Operation(Type.GET, read, null, values.get(read), invoked, responded));
+        }
+      }
+    } else {
+      storage.clear();
+      final long responded = System.nanoTime();
+      for (int cleared = 0; cleared < KEYS; cleared++) {
+        history.add(new Operation(Type.BLIND_REMOVE, cleared, null, null, invoked, responded));
+      }
+    }
+  }
+
+  /**
+   * Skewed towards low keys, so that a few stripes take most of the traffic and get split.
+   */
+  private static Integer nextKey(final Random random) {
+    final double uniform = random.nextDouble();
+    return (int) (KEYS * uniform * uniform * uniform);
+  }
+
+  private static void checkLinearizable(final long seed, final List<Operation> history) {
+    final Map<Integer, List<Operation>> perKey = new HashMap<Integer, List<Operation>>();
+    for (Operation operation : history) {
+      List<Operation> operations = perKey.get(operation.key);
+      if (operations == null) {
+        operations = new ArrayList<Operation>();
+        perKey.put(operation.key, operations);
+      }
+      operations.add(operation);
+    }
+    for (Map.Entry<Integer, List<Operation>> entry : perKey.entrySet()) {
+      final List<Operation> operations = entry.getValue();
+      if (!linearize(operations, new BitSet(operations.size()), null, new HashSet<Configuration>())) {
+        fail("Seed " + seed + ": history of key " + entry.getKey() + " isn't linearizable " + operations);
+      }
+    }
+  }
+
+  /**
+   * Depth-first search for a sequential ordering of {@code operations} that respects real-time order and register
+   * semantics, remembering explored (linearized set, value) configurations.
+   */
+  private static boolean linearize(final List<Operation> operations, final BitSet linearized, final Integer value, final Set<Configuration> explored) {
+    if (linearized.cardinality() == operations.size()) {
+      return true;
+    }
+    long firstResponse = Long.MAX_VALUE;
+    for (int i = linearized.nextClearBit(0); i < operations.size(); i = linearized.nextClearBit(i + 1)) {
+      firstResponse = Math.min(firstResponse, operations.get(i).responded);
+    }
+    for (int i = linearized.nextClearBit(0); i < operations.size(); i = linearized.nextClearBit(i + 1)) {
+      final Operation operation = operations.get(i);
+      // only operations invoked before any pending one returned can take effect next
+      if (operation.invoked <= firstResponse && operation.isLegal(value)) {
+        final BitSet next = (BitSet) linearized.clone();
+        next.set(i);
+        final Integer nextValue = operation.apply(value);
+        if (explored.add(new Configuration(next, nextValue)) && linearize(operations, next, nextValue, explored)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private enum Type {PUT, GET, REMOVE, CONTAINS, BLIND_REMOVE}
+
+  private static final class Operation {
+
+    private final Type type;
+    private final Integer key;
+    private final Integer value;
+    private final Object result;
+    private final long invoked;
+    private final long responded;
+
+    private Operation(final Type type, final Integer key, final Integer value, final Object result, final long invoked, final long responded) {
+      this.type = type;
+      this.key = key;
+      this.value = value;
+      this.result = result;
+      this.invoked = invoked;
+      this.responded = responded;
+    }
+
+    private boolean isLegal(final Integer current) {
+      switch (type) {
+        case GET:
+          return current == null ? result == null : current.equals(result);
+        case REMOVE:
+        case CONTAINS:
+          return result.equals(current != null);
+        default:
+          return true;
+      }
+    }
+
+    private Integer apply(final Integer current) {
+      switch (type) {
+        case PUT:
+          return value;
+        case REMOVE:
+        case BLIND_REMOVE:
+          return null;
+        default:
+          return current;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return type + "(" + (value == null ? "" : value) + ")=" + result + "@[" + invoked + "," + responded + "]";
+    }
+  }
+
+  private static final class Configuration {
+
+    private final BitSet linearized;
+    private final Integer value;
+
+    private Configuration(final BitSet linearized, final Integer value) {
+      this.linearized = linearized;
+      this.value = value;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Configuration)) return false;
+
+      final Configuration that = (Configuration)o;
+      return linearized.equals(that.linearized) && (value == null ? that.value == null : value.equals(that.value));
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * linearized.hashCode() + (value == null ? 0 : value.hashCode());
+    }
+  }
+
+  /**
+   * Records per key event streams, {@code null} standing for a removal.
+   */
+  private static final class RecordingListener implements KeyValueStorageMutationListener<Integer, Integer> {
+
+    private final ConcurrentMap<Integer, List<Integer>> events = new ConcurrentHashMap<Integer, List<Integer>>();
+
+    @Override
+    public void removed(final Retriever<? extends Integer> key) {
+      events(key.retrieve()).add(null);
+    }
+
+    @Override
+    public void added(final Retriever<? extends Integer> key, final Retriever<? extends Integer> value, final byte metadata) {
+      events(key.retrieve()).add(value.retrieve());
+    }
+
+    private List<Integer> events(final Integer key) {
+      List<Integer> keyEvents = events.get(key);
+      if (keyEvents == null) {
+        final List<Integer> fresh = Collections.synchronizedList(new ArrayList<Integer>());
+        keyEvents = events.putIfAbsent(key, fresh);
+        if (keyEvents == null) {
+          keyEvents = fresh;
+        }
+      }
+      return keyEvents;
+    }
+  }
+}
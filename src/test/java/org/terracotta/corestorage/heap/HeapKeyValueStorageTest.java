@@ -18,8 +18,15 @@ package org.terracotta.corestorage.heap;
 
 import org.junit.Test;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterators;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import org.terracotta.corestorage.KeyValueStorage;
 import org.terracotta.corestorage.KeyValueStorageMutationListener;
 import org.terracotta.corestorage.Retriever;
@@ -27,6 +34,7 @@ import org.terracotta.corestorage.Retriever;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 /**
  * @author Alex Snaps
@@ -66,10 +74,203 @@ public class HeapKeyValueStorageTest {
 
   }
 
-  private static class CountingMapStorageMutationListener<K, V> implements KeyValueStorageMutationListener<K, V> {
+  @Test
+  public void testBulkLoadStoresEntriesAndNotifiesOnce() {
+    final CountingMapStorageMutationListener<Integer, String> mapMutationListener = new CountingMapStorageMutationListener<Integer, String>();
+    final int maxKey = 100000;
+    final List<Map.Entry<Integer, String>> entries = new ArrayList<Map.Entry<Integer, String>>();
+    for(int i = 0; i < maxKey; i++) {
+      entries.add(new AbstractMap.SimpleEntry<Integer, String>(i, Integer.toHexString(i)));
+    }
+    final HeapKeyValueStorage<Integer, String> map = HeapKeyValueStorage.bulkLoad(Collections.singletonList(mapMutationListener), maxKey)
+        .load(entries.stream())
+        .complete(true);
+    assertThat(map.size(), is((long) maxKey));
+    for(int i = 0; i < maxKey; i++) {
+      assertThat(map.get(i), equalTo(Integer.toHexString(i)));
+    }
+    assertThat(mapMutationListener.added.get(), is(0L));
+    assertThat(mapMutationListener.loaded.get(), is((long) maxKey));
+  }
+
+  @Test
+  public void testBulkLoadKeepsLastEntryForDuplicatedKeys() {
+    final int maxKey = 1000;
+    final List<Map.Entry<Integer, String>> entries = new ArrayList<Map.Entry<Integer, String>>();
+    for(int round = 0; round < 100; round++) {
+      for(int i = 0; i < maxKey; i++) {
+        entries.add(new AbstractMap.SimpleEntry<Integer, String>(i, round + ":" + i));
+      }
+    }
+    final CountingMapStorageMutationListener<Integer, String> mapMutationListener = new CountingMapStorageMutationListener<Integer, String>();
+    final HeapBulkLoad<Integer, String> bulkLoad = HeapKeyValueStorage.bulkLoad(Collections.singletonList(mapMutationListener), maxKey);
+    bulkLoad.load(entries.spliterator());
+    assertThat(bulkLoad.getLoaded(), is(100L * maxKey));
+    final HeapKeyValueStorage<Integer, String> map = bulkLoad.complete(false);
+    assertThat(map.size(), is((long) maxKey));
+    for(int i = 0; i < maxKey; i++) {
+      assertThat(map.get(i), equalTo("99:" + i));
+    }
+    assertThat(mapMutationListener.loaded.get(), is(0L));
+  }
+
+  @Test
+  public void testBulkLoadPropagatesSourceFailure() {
+    final HeapBulkLoad<Integer, String> bulkLoad = HeapKeyValueStorage.bulkLoad(null, 16);
+    final Iterator<Map.Entry<Integer, String>> failing = new Iterator<Map.Entry<Integer, String>>() {
+      private int next;
+
+      @Override
+      public boolean hasNext() {
+        return true;
+      }
+
+      @Override
+      public Map.Entry<Integer, String> next() {
+        if (next == 1000) {
+          throw new IllegalStateException("source failure");
+        }
+        return new AbstractMap.SimpleEntry<Integer, String>(next, Integer.toHexString(next++));
+      }
+    };
+    try {
+      bulkLoad.load(Spliterators.spliteratorUnknownSize(failing, 0));
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage(), is("source failure"));
+    }
+    assertThat(bulkLoad.getLoaded(), is(0L));
+  }
+
+  @Test
+  public void testContendedStripeGetsSplit() throws InterruptedException {
+    final HeapKeyValueStorage<Integer, String> map = new HeapKeyValueStorage<Integer, String>(null, 1, 16, 1);
+    assertThat(map.getStripeUtilization().size(), is(1));
+
+    splitStripeOf(map, 0);
+
+    assertThat(map.get(0), equalTo("split"));
+    final List<HeapStripeUtilization> utilization = map.getStripeUtilization();
+    assertThat(utilization.size(), is(3));
+    assertThat(utilization.get(0).isSplit(), is(true));
+    assertThat(utilization.get(0).getDepth(), is(0));
+    assertThat(utilization.get(0).getAcquisitions(), is(1L));
+    assertThat(utilization.get(0).getContentions(), is(1L));
+    for (int i = 1; i < utilization.size(); i++) {
+      final HeapStripeUtilization half = utilization.get(i);
+      assertThat(half.isSplit(), is(false));
+      assertThat(half.getStripe(), is(0));
+      assertThat(half.getDepth(), is(1));
+      assertThat(half.getPath(), is(i - 1));
+    }
+  }
+
+  @Test
+  public void testSplitsKeepMappingsUnderConcurrentWrites() throws InterruptedException {
+    final HeapKeyValueStorage<Integer, String> map = new HeapKeyValueStorage<Integer, String>(null, 2, 16, 1);
+    splitStripeOf(map, 0);
+    assertThat(map.getStripeUtilization().size(), is(4));
+    map.remove(0);
+
+    final int maxKey = 10000;
+    final Thread[] writers = new Thread[4];
+    for (int t = 0; t < writers.length; t++) {
+      final int offset = t;
+      writers[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = offset; i < maxKey; i += writers.length) {
+            map.put(i, Integer.toHexString(i));
+            if (i % 3 == 0) {
+              map.remove(i);
+            }
+          }
+        }
+      };
+      writers[t].start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    for (int i = 0; i < maxKey; i++) {
+      assertThat(map.get(i), i % 3 == 0 ? equalTo((String) null) : equalTo(Integer.toHexString(i)));
+    }
+    long acquisitions = 0;
+    for (HeapStripeUtilization stripe : map.getStripeUtilization()) {
+      assertThat(stripe.getDepth() <= HeapKeyValueStorage.MAX_SPLIT_DEPTH, is(true));
+      acquisitions += stripe.getAcquisitions();
+    }
+    assertThat(acquisitions >= maxKey + maxKey / 3, is(true));
+  }
+
+  @Test
+  public void testReadersDontStarveQueuedWriter() throws InterruptedException {
+    final HeapKeyValueStorage<Integer, String> map = new HeapKeyValueStorage<Integer, String>(null, 1);
+    map.put(0, "zero");
+    final Lock lock = map.lockFor(0, false);
+    final Thread writer = new Thread() {
+      @Override
+      public void run() {
+        map.put(0, "written");
+      }
+    };
+    final Thread reader = new Thread() {
+      @Override
+      public void run() {
+        map.get(0);
+      }
+    };
+    try {
+      writer.start();
+      while (writer.getState() != Thread.State.WAITING) {
+        Thread.sleep(1);
+      }
+      reader.start();
+      reader.join(100);
+      // a new reader has to queue behind the waiting writer
+      assertThat(reader.isAlive(), is(true));
+    } finally {
+      lock.unlock();
+    }
+    writer.join(10000);
+    reader.join(10000);
+    assertThat(writer.isAlive(), is(false));
+    assertThat(reader.isAlive(), is(false));
+    assertThat(map.get(0), equalTo("written"));
+  }
+
+  /**
+   * Makes a writer contend on the stripe of {@code key}, which splits it given a split threshold of 1.
+   */
+  private static void splitStripeOf(final HeapKeyValueStorage<Integer, String> map, final int key) throws InterruptedException {
+    final Lock lock = map.lockFor(key, true);
+    final Thread writer = new Thread() {
+      @Override
+      public void run() {
+        map.put(key, "split");
+      }
+    };
+    writer.start();
+    try {
+      while (writer.getState() != Thread.State.WAITING) {
+        Thread.sleep(1);
+      }
+    } finally {
+      lock.unlock();
+    }
+    writer.join();
+  }
+
+  private static class CountingMapStorageMutationListener<K, V> implements KeyValueStorageMutationListener<K, V>, HeapBulkLoadListener {
 
     final AtomicLong added = new AtomicLong();
     final AtomicLong removed = new AtomicLong();
+    final AtomicLong loaded = new AtomicLong();
+
+    @Override
+    public void loaded(final long count) {
+      loaded.addAndGet(count);
+    }
 
     @Override
     public void removed(final Retriever<? extends K> key) {
@@ -23,6 +23,7 @@ import org.terracotta.corestorage.KeyValueStorageConfig;
 import org.terracotta.corestorage.KeyValueStorageMutationListener;
 import org.terracotta.corestorage.Retriever;
 
+import java.util.AbstractMap;
 import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
@@ -128,4 +129,99 @@ public class HeapStorageManagerTest {
     KeyValueStorage<Object, Object> map = manager.createKeyValueStorage("foo", builder(Object.class, Object.class).build());
     assertThat(manager.getKeyValueStorage("foo", Object.class, Object.class), sameInstance(map));
   }
+
+  @Test
+  public void testBulkLoadedStorageIsPublishedOnComplete() throws Exception {
+    HeapStorageManager manager = new HeapStorageManager();
+    manager.start().get();
+    final HeapBulkLoad<Long, String> bulkLoad = manager.bulkLoadKeyValueStorage("foo", builder(Long.class, String.class).build(), 1);
+    bulkLoad.load(Collections.<Map.Entry<Long, String>>singletonList(new AbstractMap.SimpleEntry<Long, String>(1L, "one")).stream());
+    assertThat(manager.getKeyValueStorage("foo", Long.class, String.class), nullValue());
+    try {
+      manager.createKeyValueStorage("foo", builder(Long.class, String.class).build());
+      fail();
+    } catch (IllegalStateException e) {
+      // expected!
+    }
+    final KeyValueStorage<Long, String> map = bulkLoad.complete(false);
+    assertThat(manager.getKeyValueStorage("foo", Long.class, String.class), sameInstance(map));
+    assertThat(map.get(1L), is("one"));
+    try {
+      manager.bulkLoadKeyValueStorage("foo", builder(Long.class, String.class).build(), 1);
+      fail();
+    } catch (IllegalStateException e) {
+      // expected!
+    }
+  }
+
+  @Test
+  public void testBulkLoadStaysOpenWhenPublicationFails() throws Exception {
+    HeapStorageManager manager = new HeapStorageManager();
+    manager.start().get();
+    final HeapBulkLoad<Long, String> bulkLoad = manager.bulkLoadKeyValueStorage("foo", builder(Long.class, String.class).build(), 1);
+    bulkLoad.load(Collections.<Map.Entry<Long, String>>singletonList(new AbstractMap.SimpleEntry<Long, String>(1L, "one")).stream());
+    manager.destroyKeyValueStorage("foo");
+    for (int i = 0; i < 2; i++) {
+      try {
+        bulkLoad.complete(false);
+        fail();
+      } catch (IllegalStateException e) {
+        assertThat(e.getMessage(), is("Alias foo was destroyed while bulk loading"));
+      }
+    }
+    assertThat(manager.getKeyValueStorage("foo", Long.class, String.class), nullValue());
+  }
+
+  @Test
+  public void testHandleAcceptsSupertypesAndChecksPuts() throws Exception {
+    HeapStorageManager manager = new HeapStorageManager(Collections.<String, KeyValueStorageConfig<?, ?>>singletonMap("foo", builder(Long.class, Integer.class).build()));
+    manager.start().get();
+    final HeapKeyValueStorageHandle<Number, Number> handle = manager.getKeyValueStorageHandle("foo", Number.class, Number.class);
+    handle.put(1L, 1);
+    assertThat(handle.get(1L), is((Number) 1));
+    assertThat(manager.getKeyValueStorage("foo", Long.class, Integer.class).get(1L), is(1));
+    try {
+      handle.put(2, 2);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected!
+    }
+    try {
+      manager.getKeyValueStorageHandle("foo", Integer.class, Integer.class);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected!
+    }
+    assertThat(manager.getKeyValueStorageHandle("bar", Object.class, Object.class), nullValue());
+  }
+
+  @Test
+  public void testHandleFailsOnceDestroyedOrClosed() throws Exception {
+    HeapStorageManager manager = new HeapStorageManager();
+    manager.start().get();
+    manager.createKeyValueStorage("foo", builder(String.class, String.class).build());
+    manager.createKeyValueStorage("bar", builder(String.class, String.class).build());
+    final HeapKeyValueStorageHandle<String, String> foo = manager.getKeyValueStorageHandle("foo", String.class, String.class);
+    final HeapKeyValueStorageHandle<String, String> bar = manager.getKeyValueStorageHandle("bar", String.class, String.class);
+    foo.put("a", "b");
+    manager.destroyKeyValueStorage("foo");
+    assertThat(foo.isValid(), is(false));
+    try {
+      foo.get("a");
+      fail();
+    } catch (IllegalStateException e) {
+      // expected!
+    }
+    manager.createKeyValueStorage("foo", builder(String.class, String.class).build());
+    assertThat(foo.isValid(), is(false));
+    assertThat(bar.isValid(), is(true));
+    manager.close();
+    assertThat(bar.isValid(), is(false));
+    try {
+      bar.put("a", "b");
+      fail();
+    } catch (IllegalStateException e) {
+      // expected!
+    }
+  }
 }